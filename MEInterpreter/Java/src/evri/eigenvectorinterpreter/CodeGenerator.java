@@ -0,0 +1,223 @@
+package evri.eigenvectorinterpreter;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import Jama.Matrix;
+
+/*
+ * Generates a hidden class per compiled model whose run method is the straight-line code of
+ * the plan: every slot is a local variable, and the constants, sparse forms and row norms of
+ * the plan are final fields, so each line becomes a direct call of its kernel.
+ */
+class CodeGenerator implements Opcodes {
+
+	private static final String CLASS_NAME = "evri/eigenvectorinterpreter/GeneratedModel";
+	private static final String INTERPRETER = "evri/eigenvectorinterpreter/ModelInterpreter";
+	private static final String CODE = "evri/eigenvectorinterpreter/ModelInterpreter$GeneratedCode";
+	private static final String MATRIX = "Jama/Matrix";
+	private static final String SPARSE = "evri/eigenvectorinterpreter/SparseMatrix";
+
+	// kernel method of each FN_ code, and whether it takes a single input
+	private static final String[] KERNELS = new String[ModelInterpreter.FN_PAIRSQDIST + 1];
+	static {
+		KERNELS[ModelInterpreter.FN_ABS] = "abs";
+		KERNELS[ModelInterpreter.FN_LOG10] = "log10";
+		KERNELS[ModelInterpreter.FN_TRANSPOSE] = "transpose";
+		KERNELS[ModelInterpreter.FN_PLUS] = "plus";
+		KERNELS[ModelInterpreter.FN_MINUS] = "minus";
+		KERNELS[ModelInterpreter.FN_MTIMES] = "mtimes";
+		KERNELS[ModelInterpreter.FN_TIMES] = "times";
+		KERNELS[ModelInterpreter.FN_RDIVIDE] = "rdivide";
+		KERNELS[ModelInterpreter.FN_POWER] = "power";
+		KERNELS[ModelInterpreter.FN_COLS] = "cols";
+		KERNELS[ModelInterpreter.FN_ROWS] = "rows";
+		KERNELS[ModelInterpreter.FN_ROWSQDIST] = "rowsqdist";
+		KERNELS[ModelInterpreter.FN_PAIRSQDIST] = "pairsqdist";
+	}
+
+	private ModelInterpreter.CompiledPlan plan;
+
+	// objects stored in final fields k0, k1, ... (by identity)
+	private Map<Object, Integer> fieldIndex = new IdentityHashMap<Object, Integer>();
+	private List<Object> fieldValues = new ArrayList<Object>();
+
+	private CodeGenerator(ModelInterpreter.CompiledPlan plan) {
+		this.plan = plan;
+	}
+
+	/*
+	 * Generate, define and instantiate the hidden class for the plan of owner
+	 */
+	static ModelInterpreter.GeneratedCode generate(ModelInterpreter owner, ModelInterpreter.CompiledPlan plan) throws ReflectiveOperationException {
+		CodeGenerator generator = new CodeGenerator(plan);
+		byte[] bytes = generator.generateClass();
+		Class<?> hidden = MethodHandles.lookup().defineHiddenClass(bytes, true).lookupClass();
+		Object[] values = generator.fieldValues.toArray();
+		return (ModelInterpreter.GeneratedCode) hidden.getDeclaredConstructor(ModelInterpreter.class, Object[].class)
+				.newInstance(owner, values);
+	}
+
+	private byte[] generateClass() {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V11, ACC_FINAL | ACC_SUPER, CLASS_NAME, null, "java/lang/Object", new String[] { CODE });
+
+		// run first, it decides which fields exist
+		generateRun(cw);
+
+		cw.visitField(ACC_PRIVATE | ACC_FINAL, "owner", "L" + INTERPRETER + ";", null, null).visitEnd();
+		for (int i = 0; i < fieldValues.size(); i++) {
+			cw.visitField(ACC_PRIVATE | ACC_FINAL, "k" + i, descriptor(fieldValues.get(i)), null, null).visitEnd();
+		}
+		generateConstructor(cw);
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	// GeneratedModel(ModelInterpreter owner, Object[] values): stores owner and k<i> = values[i]
+	private void generateConstructor(ClassWriter cw) {
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "(L" + INTERPRETER + ";[Ljava/lang/Object;)V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitFieldInsn(PUTFIELD, CLASS_NAME, "owner", "L" + INTERPRETER + ";");
+		for (int i = 0; i < fieldValues.size(); i++) {
+			String desc = descriptor(fieldValues.get(i));
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitVarInsn(ALOAD, 2);
+			pushInt(mv, i);
+			mv.visitInsn(AALOAD);
+			mv.visitTypeInsn(CHECKCAST, desc.startsWith("L") ? desc.substring(1, desc.length() - 1) : desc);
+			mv.visitFieldInsn(PUTFIELD, CLASS_NAME, "k" + i, desc);
+		}
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	// Matrix[] run(Matrix x): the steps of the plan, returns the value of every slot
+	private void generateRun(ClassWriter cw) {
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "run", "(L" + MATRIX + ";)[L" + MATRIX + ";", null, null);
+		mv.visitCode();
+		int nslots = plan.slotNames.length;
+		for (int s = 0; s < nslots; s++) {
+			mv.visitInsn(ACONST_NULL);
+			mv.visitVarInsn(ASTORE, local(s));
+		}
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitVarInsn(ASTORE, local(plan.inputSlot));
+
+		for (int i = 0; i < plan.code.length; i++) {
+			//get constants
+			for (int k = 0; k < plan.constantSlots[i].length; k++) {
+				loadField(mv, plan.constantValues[i][k]);
+				mv.visitVarInsn(ASTORE, local(plan.constantSlots[i][k]));
+			}
+			for (ModelInterpreter.Instruction ins : plan.code[i]) {
+				generateInstruction(mv, ins);
+				mv.visitVarInsn(ASTORE, local(ins.out));
+			}
+		}
+
+		pushInt(mv, nslots);
+		mv.visitTypeInsn(ANEWARRAY, MATRIX);
+		for (int s = 0; s < nslots; s++) {
+			mv.visitInsn(DUP);
+			pushInt(mv, s);
+			mv.visitVarInsn(ALOAD, local(s));
+			mv.visitInsn(AASTORE);
+		}
+		mv.visitInsn(ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	// leaves the result of one instruction on the stack
+	private void generateInstruction(MethodVisitor mv, ModelInterpreter.Instruction ins) {
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitFieldInsn(GETFIELD, CLASS_NAME, "owner", "L" + INTERPRETER + ";");
+		if (ins.sparse1 != null || ins.sparse2 != null) {
+			// sparse kernels need the runtime checks of evaluate (scalar and non-finite operands)
+			pushInt(mv, ins.fn);
+			loadSlot(mv, ins.in1);
+			loadSlot(mv, ins.in2);
+			loadField(mv, ins.sparse1);
+			loadField(mv, ins.sparse2);
+			loadField(mv, ins.rowNorms);
+			mv.visitMethodInsn(INVOKEVIRTUAL, INTERPRETER, "evaluate",
+					"(IL" + MATRIX + ";L" + MATRIX + ";L" + SPARSE + ";L" + SPARSE + ";[D)L" + MATRIX + ";", false);
+			return;
+		}
+
+		String kernel = KERNELS[ins.fn];
+		loadSlot(mv, ins.in1);
+		if (ins.fn == ModelInterpreter.FN_ABS || ins.fn == ModelInterpreter.FN_LOG10 || ins.fn == ModelInterpreter.FN_TRANSPOSE) {
+			mv.visitMethodInsn(INVOKEVIRTUAL, INTERPRETER, kernel, "(L" + MATRIX + ";)L" + MATRIX + ";", false);
+		} else if (ins.fn == ModelInterpreter.FN_PAIRSQDIST) {
+			loadSlot(mv, ins.in2);
+			loadField(mv, ins.rowNorms);
+			mv.visitMethodInsn(INVOKEVIRTUAL, INTERPRETER, kernel, "(L" + MATRIX + ";L" + MATRIX + ";[D)L" + MATRIX + ";", false);
+		} else {
+			loadSlot(mv, ins.in2);
+			mv.visitMethodInsn(INVOKEVIRTUAL, INTERPRETER, kernel, "(L" + MATRIX + ";L" + MATRIX + ";)L" + MATRIX + ";", false);
+		}
+	}
+
+	// slot s lives in local variable s+2 (0 is this, 1 is x)
+	private static int local(int slot) {
+		return slot + 2;
+	}
+
+	// pushes the value of a slot, or the empty matrix for a missing second input
+	private void loadSlot(MethodVisitor mv, int slot) {
+		if (slot < 0) {
+			mv.visitFieldInsn(GETSTATIC, INTERPRETER, "EMPTY", "L" + MATRIX + ";");
+		} else {
+			mv.visitVarInsn(ALOAD, local(slot));
+		}
+	}
+
+	// pushes the final field holding value (null if value is null)
+	private void loadField(MethodVisitor mv, Object value) {
+		if (value == null) {
+			mv.visitInsn(ACONST_NULL);
+			return;
+		}
+		Integer index = fieldIndex.get(value);
+		if (index == null) {
+			index = fieldValues.size();
+			fieldIndex.put(value, index);
+			fieldValues.add(value);
+		}
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitFieldInsn(GETFIELD, CLASS_NAME, "k" + index, descriptor(value));
+	}
+
+	private static String descriptor(Object value) {
+		if (value instanceof Matrix) return "L" + MATRIX + ";";
+		if (value instanceof SparseMatrix) return "L" + SPARSE + ";";
+		return "[D";
+	}
+
+	private static void pushInt(MethodVisitor mv, int value) {
+		if (value >= -1 && value <= 5) {
+			mv.visitInsn(ICONST_0 + value);
+		} else if (value <= Byte.MAX_VALUE) {
+			mv.visitIntInsn(BIPUSH, value);
+		} else if (value <= Short.MAX_VALUE) {
+			mv.visitIntInsn(SIPUSH, value);
+		} else {
+			mv.visitLdcInsn(value);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package evri.eigenvectorinterpreter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class ColumnarResultReader {
+
+	// largest mapping used for one segment of a column (FileChannel.map is limited to 2 GB)
+	static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+	private Map<String, List<DoubleBuffer>> segments = new TreeMap<String, List<DoubleBuffer>>();
+	private Map<String, Integer> columns = new TreeMap<String, Integer>();
+	private Map<String, Long> rows = new TreeMap<String, Long>();
+
+	// Maps every column file written by ColumnarResultWriter in directory (read-only)
+	public ColumnarResultReader(File directory) throws IOException {
+		File[] list = directory.listFiles();
+		if (list == null) {
+			throw new IOException("Not a result directory: " + directory);
+		}
+		for (File file : list) {
+			String fname = file.getName();
+			if (!fname.endsWith(ColumnarResultWriter.EXTENSION)) continue;
+			String name = fname.substring(0, fname.length() - ColumnarResultWriter.EXTENSION.length());
+
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				long[] dims = ColumnarResultWriter.readHeader(
+						channel.map(FileChannel.MapMode.READ_ONLY, 0, ColumnarResultWriter.HEADER_SIZE), file);
+				int ncols = (int) dims[0];
+				long nrows = dims[1];
+
+				// map whole rows per segment, so a row never spans two buffers
+				long rowBytes = 8L * Math.max(ncols, 1);
+				long segmentRows = Math.max(1, MAX_SEGMENT_BYTES / rowBytes);
+				List<DoubleBuffer> buffers = new ArrayList<DoubleBuffer>();
+				for (long ri = 0; ri < nrows && ncols > 0; ri += segmentRows) {
+					long size = Math.min(segmentRows, nrows - ri) * rowBytes;
+					buffers.add(channel.map(FileChannel.MapMode.READ_ONLY, ColumnarResultWriter.HEADER_SIZE + ri * rowBytes, size)
+							.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer());
+				}
+				segments.put(name, buffers);
+				columns.put(name, ncols);
+				rows.put(name, nrows);
+			} finally {
+				raf.close();   // mappings stay valid after the channel is closed
+			}
+		}
+	}
+
+	// Sorted list of variable names found in the directory
+	public List<String> getVarList() {
+		return new ArrayList<String>(segments.keySet());
+	}
+
+	// Values of variable name, row by row, in consecutive segments of whole rows
+	// (element (r,c) of a segment at index r*getColumns(name)+c)
+	public List<DoubleBuffer> getSegments(String name) {
+		List<DoubleBuffer> buffers = segments.get(name);
+		if (buffers == null) return null;
+		List<DoubleBuffer> result = new ArrayList<DoubleBuffer>();
+		for (DoubleBuffer buffer : buffers) {
+			result.add(buffer.duplicate());
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	// Values of variable name, row by row (element (r,c) at index r*getColumns(name)+c).
+	// Only for variables which fit in one segment, use getSegments otherwise.
+	public DoubleBuffer getVar(String name) {
+		List<DoubleBuffer> buffers = segments.get(name);
+		if (buffers == null) return null;
+		if (buffers.size() > 1) {
+			throw new IllegalStateException("Variable \"" + name + "\" spans " + buffers.size() + " segments, use getSegments");
+		}
+		return buffers.isEmpty() ? DoubleBuffer.allocate(0) : buffers.get(0).duplicate();
+	}
+
+	public int getColumns(String name) {
+		return columns.get(name);
+	}
+
+	public long getRows(String name) {
+		return rows.get(name);
+	}
+}
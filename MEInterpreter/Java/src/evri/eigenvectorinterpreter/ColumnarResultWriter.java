@@ -0,0 +1,187 @@
+package evri.eigenvectorinterpreter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import Jama.Matrix;
+
+public class ColumnarResultWriter implements Closeable {
+
+	// File layout, one file "<varname>.col" per variable, little endian:
+	//   0  "MECF" magic
+	//   4  int    format version
+	//   8  int    number of columns of the variable
+	//   12 long   number of rows written so far
+	//   20 ...    padding to HEADER_SIZE
+	//   HEADER_SIZE  rows x columns doubles, row by row
+	static final int MAGIC = 0x4D454346;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 32;
+	static final String EXTENSION = ".col";
+
+	// rows are collected in a buffer of this size per variable and written when it is full
+	static final int BUFFER_SIZE = 1 << 20;
+
+	private Map<String, ColumnFile> files = new LinkedHashMap<String, ColumnFile>();
+
+	// Creates (or truncates) one column file in directory for each of the given variable names
+	public ColumnarResultWriter(File directory, List<String> varnames) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create result directory " + directory);
+		}
+		try {
+			for (String name : varnames) {
+				files.put(name, new ColumnFile(new File(directory, name + EXTENSION)));
+			}
+		} catch (IOException e) {
+			for (ColumnFile file : files.values()) {
+				try {
+					file.close();
+				} catch (IOException ignored) {
+					// report the original error
+				}
+			}
+			throw e;
+		}
+	}
+
+	// Appends the rows of each selected variable in the results workspace (e.g. one chunk of samples).
+	// All variables are checked first, so a chunk is either appended to every file or to none.
+	public void append(Workspace results) throws IOException {
+		List<Matrix> values = new ArrayList<Matrix>();
+		for (Map.Entry<String, ColumnFile> entry : files.entrySet()) {
+			Matrix value = results.getVar(entry.getKey());
+			if (value == null) {
+				throw new IllegalArgumentException("Variable \"" + entry.getKey() + "\" not found in results");
+			}
+			entry.getValue().checkColumns(value);
+			values.add(value);
+		}
+		int i = 0;
+		for (ColumnFile file : files.values()) {
+			file.append(values.get(i++));
+		}
+	}
+
+	public List<String> getVarList() {
+		return new ArrayList<String>(files.keySet());
+	}
+
+	// Number of rows appended so far for the variable name
+	public long getRows(String name) {
+		return files.get(name).rows;
+	}
+
+	// Writes out all buffered rows, flushes them to disk and closes the files
+	public void close() throws IOException {
+		IOException error = null;
+		for (ColumnFile file : files.values()) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				if (error == null) error = e;
+			}
+		}
+		if (error != null) throw error;
+	}
+
+	/*
+	 * One variable's file, rows are buffered and written to the channel when the buffer is full
+	 */
+	private static class ColumnFile {
+		private RandomAccessFile raf;
+		private FileChannel channel;
+		private ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		private int columns = -1;
+		private long rows = 0;          // rows appended
+		private long position = HEADER_SIZE;  // file position of the next buffered row
+		private boolean closed = false;
+
+		ColumnFile(File file) throws IOException {
+			raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(0);
+				channel = raf.getChannel();
+				writeHeader(0, 0);
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+		}
+
+		void checkColumns(Matrix value) {
+			int ncols = value.getColumnDimension();
+			if (columns >= 0 && ncols != columns) {
+				throw new IllegalArgumentException("Chunk has " + ncols + " columns, expected " + columns);
+			}
+		}
+
+		void append(Matrix value) throws IOException {
+			checkColumns(value);
+			int nrows = value.getRowDimension();
+			int ncols = value.getColumnDimension();
+			columns = ncols;
+
+			double[][] values = value.getArray();
+			for (int ri = 0; ri < nrows; ri++) {
+				for (int ci = 0; ci < ncols; ci++) {
+					if (!buffer.hasRemaining()) {
+						flush();
+					}
+					buffer.putDouble(values[ri][ci]);
+				}
+			}
+			rows += nrows;
+		}
+
+		// Writes the buffered values, then the header with the number of complete rows on disk
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+			buffer.clear();
+			long rowBytes = 8L * Math.max(columns, 0);
+			writeHeader(Math.max(columns, 0), rowBytes == 0 ? 0 : (position - HEADER_SIZE) / rowBytes);
+		}
+
+		private void writeHeader(int ncols, long nrows) throws IOException {
+			header.clear();
+			header.putInt(MAGIC).putInt(VERSION).putInt(ncols).putLong(nrows);
+			header.clear();
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+		}
+
+		void close() throws IOException {
+			if (closed) return;
+			closed = true;
+			try {
+				flush();
+				channel.force(true);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	// Reads and checks a column file header, returns {columns, rows}
+	static long[] readHeader(ByteBuffer header, File file) throws IOException {
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+			throw new IOException("Not a result column file: " + file);
+		}
+		return new long[] { header.getInt(8), header.getLong(12) };
+	}
+}
@@ -0,0 +1,69 @@
+package evri.eigenvectorinterpreter;
+
+import Jama.Matrix;
+
+/*
+ * Times apply() on one Model_Exporter file for each way of running the script:
+ * line by line interpretation, the compiled plan and the code generated for it.
+ *
+ *   java evri.eigenvectorinterpreter.ModelBenchmark model.xml [applies per round] [rounds]
+ *
+ * Each mode is warmed up with one untimed round, then the remaining rounds are timed
+ * with the modes interleaved so they see the same JIT and machine state.
+ */
+public class ModelBenchmark {
+
+	private static final String[] MODES = { "script", "plan", "generated" };
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Usage: ModelBenchmark model.xml [applies per round] [rounds]");
+			return;
+		}
+		int applies = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		try {
+			ModelInterpreter model = new ModelInterpreter(args[0]);
+			model.setUseGeneratedCode(true);
+			System.out.println("Model type: " + model.getModelType() + ", compiled plan: " + model.isPlanCompiled()
+					+ ", generated code: " + model.isCodeGenerated());
+			Matrix sample = Matrix.random(1, model.getInputDataSize());
+
+			//warm up every mode, then time them
+			long[] best = new long[MODES.length];
+			long[] total = new long[MODES.length];
+			for (int round = 0; round <= rounds; round++) {
+				for (int mode = 0; mode < MODES.length; mode++) {
+					long elapsed = time(model, mode, sample, applies);
+					if (round == 0) continue;
+					total[mode] += elapsed;
+					best[mode] = (round == 1) ? elapsed : Math.min(best[mode], elapsed);
+				}
+			}
+
+			for (int mode = 0; mode < MODES.length; mode++) {
+				System.out.println(String.format("%-10s mean %8.2f us/apply, best %8.2f us/apply",
+						MODES[mode], total[mode] / 1000.0 / rounds / applies, best[mode] / 1000.0 / applies));
+			}
+			System.out.println(String.format("generated vs plan: %.2fx, plan vs script: %.2fx",
+					total[1] / (double) total[2], total[0] / (double) total[1]));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Apply the model to sample the given number of times in one mode (index into MODES)
+	 * returns elapsed time in ns
+	 */
+	private static long time(ModelInterpreter model, int mode, Matrix sample, int applies) throws Exception {
+		model.setUseCompiledPlan(mode > 0);
+		model.setUseGeneratedCode(mode > 1);
+		long startTime = System.nanoTime();
+		for (int i = 0; i < applies; i++) {
+			model.setInputData(sample);
+			model.apply();
+		}
+		return System.nanoTime() - startTime;
+	}
+}
@@ -1,8 +1,19 @@
 package evri.eigenvectorinterpreter;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -26,6 +37,61 @@ public class ModelInterpreter {
 	//	private Node myInformation = null;
 	private String myModelType = "";
 
+	// summary of constants stored sparse and the memory they save, built at load
+	private String mySparseReport = "";
+
+	// compiled form of the step scripts (null if it couldn't be compiled)
+	private CompiledPlan myPlan = null;
+	private boolean useCompiledPlan = true;
+
+	// generated code for the plan (null until selected, or if it couldn't be generated);
+	// off by default as ModelBenchmark doesn't show it beating the plan
+	private GeneratedCode myCode = null;
+	private boolean useGeneratedCode = false;
+	private boolean isCodeGenerationTried = false;
+
+	// internal function names substituted for squared-distance sequences (see fuseSquaredDistances)
+	private static final String FUSED_ROW_SQDIST = "rowsqdist";
+	private static final String FUSED_PAIR_SQDIST = "pairsqdist";
+
+	// script function codes
+	static final int FN_ABS = 0;
+	static final int FN_LOG10 = 1;
+	static final int FN_TRANSPOSE = 2;
+	static final int FN_PLUS = 3;
+	static final int FN_MINUS = 4;
+	static final int FN_MTIMES = 5;
+	static final int FN_TIMES = 6;
+	static final int FN_RDIVIDE = 7;
+	static final int FN_POWER = 8;
+	static final int FN_COLS = 9;
+	static final int FN_ROWS = 10;
+	static final int FN_ROWSQDIST = 11;
+	static final int FN_PAIRSQDIST = 12;
+	private static final Map<String, Integer> FUNCTIONS = new HashMap<String, Integer>();
+	static {
+		FUNCTIONS.put("abs", FN_ABS);
+		FUNCTIONS.put("log10", FN_LOG10);
+		FUNCTIONS.put("transpose", FN_TRANSPOSE);
+		FUNCTIONS.put("plus", FN_PLUS);
+		FUNCTIONS.put("minus", FN_MINUS);
+		FUNCTIONS.put("mtimes", FN_MTIMES);
+		FUNCTIONS.put("times", FN_TIMES);
+		FUNCTIONS.put("rdivide", FN_RDIVIDE);
+		FUNCTIONS.put("power", FN_POWER);
+		FUNCTIONS.put("cols", FN_COLS);
+		FUNCTIONS.put("rows", FN_ROWS);
+		FUNCTIONS.put(FUSED_ROW_SQDIST, FN_ROWSQDIST);
+		FUNCTIONS.put(FUSED_PAIR_SQDIST, FN_PAIRSQDIST);
+	}
+	static final Matrix EMPTY = new Matrix(0, 0);
+
+	// constants with at least this much text are parsed in parallel
+	private static final int PARALLEL_PARSE_CHARS = 100000;
+
+	// error which stopped the model from loading (null if it loaded)
+	private Exception myLoadError = null;
+
 	// read-only
 	String modeltype;
 	Document information;
@@ -50,53 +116,49 @@ public class ModelInterpreter {
 			throw new InputDataMissing();	
 		}
 
-		//copy myData into "x" in workspace
 		myWorkspace.clearAll();
+		if (myCode != null && useGeneratedCode && useCompiledPlan) {
+			storeSlots(myPlan, myCode.run(myData));
+		} else if (myPlan != null && useCompiledPlan) {
+			runPlan();
+		} else {
+			runScript();
+		}
+
+		//indicate model was applied and exit
+		isApplied = true;     
+	}
+
+	/*
+	 * Interpret the script text of each step line by line
+	 * (used when the script could not be compiled into a plan)
+	 */
+	private void runScript() throws BadScriptCommand, MatrixDimensionException, UnknownFunctionException {
+		//copy myData into "x" in workspace
 		myWorkspace.setVar("x", myData);        
 
 		//cycle through steps
-		int ri, ci;
-//		Matrix mItem = new Matrix(0, 0);
 		String outvarname, fnname, invar1name, invar2name;
-		Matrix invar1, invar2, outvar;
-		int rows1, cols1, rows2, cols2;
+		Matrix invar1, invar2;
 		String[] splt;
 
-		int nsteps = mySteps.size();
-		for(int i=0; i<nsteps; i++)
+		for (ScriptStep onestep : mySteps)
 		{
-			ScriptStep onestep = mySteps.get(i);
 			//get constants
 			myWorkspace.setVar(onestep.getMyConstants());  //copy constants to real workspace
 
 			//parse script string
-			outvar = new Matrix(0, 0);
 			for(String oneline : onestep.getMyScript())
 			{
 				//parse a line which has format:
 				//      out = fnname(invar1name,invar2name);
 				// or:  out = fnname(invar1name);
 
-				splt = oneline.split("[=]");
-				outvarname = splt[0].trim();
-				if( splt.length<2 ) {
-					throw new BadScriptCommand(oneline);
-				}
-
-				splt = splt[1].split("[(]");
-				fnname = splt[0].trim();
-				if(splt.length<2) {
-					throw new BadScriptCommand(oneline);
-				}
-
-				splt = splt[1].split("[)]");   //invar1name,invar2name);
-				splt = splt[0].split("[,]");   //invar1name,invar2name
-				invar1name = splt[0].trim();
-				if(splt.length > 1) {
-					invar2name = splt[1].trim(); 
-				} else {
-					invar2name = "";
-				}
+				splt = splitScriptLine(oneline);
+				outvarname = splt[0];
+				fnname = splt[1];
+				invar1name = splt[2];
+				invar2name = splt[3];
 
 				//got the parts, do the math
 				invar1 = myWorkspace.getVar(invar1name);
@@ -106,37 +168,125 @@ public class ModelInterpreter {
 					invar2 = new Matrix(0, 0);
 				}
 
-				rows1 = invar1.getRowDimension();
-				cols1 = invar1.getColumnDimension();
-				rows2 = invar2.getRowDimension();
-				cols2 = invar2.getColumnDimension();
+				//store result into workspace
+				myWorkspace.setVar(outvarname, evaluate(getFunctionCode(fnname), invar1, invar2, null, null, onestep.getMyRowNorms().get(invar2name)));
+			}
+		}
+	}
+
+	/*
+	 * Run the plan compiled at load: variables live in slots of a register array and are only
+	 * copied into the workspace once all steps are done
+	 */
+	private void runPlan() throws MatrixDimensionException {
+		CompiledPlan plan = myPlan;
+		Matrix[] regs = new Matrix[plan.slotNames.length];
+		regs[plan.inputSlot] = myData;
+		for (int i = 0; i < plan.code.length; i++) {
+			//get constants
+			int[] constantSlots = plan.constantSlots[i];
+			Matrix[] constantValues = plan.constantValues[i];
+			for (int k = 0; k < constantSlots.length; k++) {
+				regs[constantSlots[k]] = constantValues[k];
+			}
+			for (Instruction ins : plan.code[i]) {
+				regs[ins.out] = evaluate(ins.fn, regs[ins.in1], ins.in2 < 0 ? EMPTY : regs[ins.in2], ins.sparse1, ins.sparse2, ins.rowNorms);
+			}
+		}
+		storeSlots(plan, regs);
+	}
 
-				String fnnamelc = fnname.toLowerCase();
-				/*
+	/*
+	 * Copy the slots which have a value into the workspace, and the sparse constants
+	 * which end up in a slot without a dense value
+	 */
+	private void storeSlots(CompiledPlan plan, Matrix[] regs) {
+		for (int s = 0; s < regs.length; s++) {
+			if (regs[s] != null) {
+				myWorkspace.setVar(plan.slotNames[s], regs[s]);
+			}
+		}
+		for (int k = 0; k < plan.sparseSlots.length; k++) {
+			myWorkspace.setSparseVar(plan.slotNames[plan.sparseSlots[k]], plan.sparseValues[k]);
+		}
+	}
+
+	/*
+	 * Evaluate one script function (see FN_ codes) on its inputs, invar2 is an empty matrix
+	 * for single input functions. sparse1/sparse2 are the sparse forms of constant inputs (or null),
+	 * in which case invar1/invar2 may be null and are only made dense if no sparse kernel applies.
+	 * rowNorms are the precomputed norms used by pairsqdist (or null).
+	 */
+	Matrix evaluate(int fn, Matrix invar1, Matrix invar2, SparseMatrix sparse1, SparseMatrix sparse2, double[] rowNorms) throws MatrixDimensionException {
+		if (sparse1 != null || sparse2 != null) {
+			Matrix sparseResult = evaluateSparse(fn, invar1, invar2, sparse1, sparse2);
+			if (sparseResult != null) return sparseResult;
+			if (invar1 == null && sparse1 != null) invar1 = sparse1.toMatrix();
+			if (invar2 == null && sparse2 != null) invar2 = sparse2.toMatrix();
+		}
+
+		switch (fn) {
+		case FN_ABS: return abs(invar1);
+		case FN_LOG10: return log10(invar1);
+		case FN_TRANSPOSE: return transpose(invar1);
+		case FN_PLUS: return plus(invar1, invar2);
+		case FN_MINUS: return minus(invar1, invar2);
+		case FN_MTIMES: return mtimes(invar1, invar2);
+		case FN_TIMES: return times(invar1, invar2);
+		case FN_RDIVIDE: return rdivide(invar1, invar2);
+		case FN_POWER: return power(invar1, invar2);
+		case FN_COLS: return cols(invar1, invar2);
+		case FN_ROWS: return rows(invar1, invar2);
+		case FN_ROWSQDIST: return rowsqdist(invar1, invar2);
+		case FN_PAIRSQDIST: return pairsqdist(invar1, invar2, rowNorms);
+		}
+		return new Matrix(0, 0);
+	}
+
+	/*
+	 * Script function kernels, one per FN_ code (package-private so generated code can call them directly)
+	 */
+
+	/*
                      Single Input Functions
                      C = function(A);  
                      abs             Absolute Value     Removal of sign of elements
                      log10           log (base 10)      Base 10 logarithm of elements
                      transpose       transpose array    Exchange rows for columns ( ' )
-				 */
-				if(fnnamelc.equals("abs")) {
-					outvar = new Matrix(rows1,cols1);
-					for (ci = 0; ci < cols1; ci++) {
-						for (ri = 0; ri < rows1; ri++) {
-							outvar.set(ri, ci, Math.abs(invar1.get(ri, ci))); 
-						}
-					}
-				} else if(fnnamelc.equals("log10")) {
-					outvar = new Matrix(rows1,cols1);
-					for (ci = 0; ci < cols1; ci++) {
-						for (ri = 0; ri < rows1; ri++) {
-							outvar.set(ri, ci, Math.log10(invar1.get(ri, ci))); 
-						}
-					}
-				} else if(fnnamelc.equals("transpose")) {
-					outvar = invar1.transpose();
+	 */
+	Matrix abs(Matrix invar1) {
+		int ri, ci;
+		int rows1 = invar1.getRowDimension();
+		int cols1 = invar1.getColumnDimension();
+		Matrix outvar;
+		outvar = new Matrix(rows1,cols1);
+		for (ci = 0; ci < cols1; ci++) {
+			for (ri = 0; ri < rows1; ri++) {
+				outvar.set(ri, ci, Math.abs(invar1.get(ri, ci))); 
+			}
+		}
+		return outvar;
+	}
+
+	Matrix log10(Matrix invar1) {
+		int ri, ci;
+		int rows1 = invar1.getRowDimension();
+		int cols1 = invar1.getColumnDimension();
+		Matrix outvar;
+		outvar = new Matrix(rows1,cols1);
+		for (ci = 0; ci < cols1; ci++) {
+			for (ri = 0; ri < rows1; ri++) {
+				outvar.set(ri, ci, Math.log10(invar1.get(ri, ci))); 
+			}
+		}
+		return outvar;
+	}
 
-					/*
+	Matrix transpose(Matrix invar1) {
+		return invar1.transpose();
+	}
+
+	/*
                 Double Input Functions
                 C = function(A,B);
                    plus          Plus                              Addition of paired elements (+)
@@ -145,158 +295,700 @@ public class ModelInterpreter {
                    times         Array multiply                    Multiplication of paired elements (.*)
                    power         Array power                       Exponent using paired elements (.^)
                    rdivide       Right array divide                 Division of paired elements (./)
-					 */
-
-				} else if(fnnamelc.equals("plus")) {
-					if (!isScalar(invar1) && !isScalar(invar2))
-					{
-						// with two matrices
-						outvar = invar1.plus(invar2);
-					} else if (!isScalar(invar1))
-					{
-						// with scalar var2, matrix var1
-						outvar = new Matrix(rows1, cols1);
-						double scalar2 = invar2.get(0, 0);
-						for (ci = 0; ci < cols1; ci++) {
-							for (ri = 0; ri < rows1; ri++) {
-								outvar.set(ri, ci, (invar1.get(ri, ci) + scalar2));
-							}
-						}
-					}
-					else
-					{
-						// with scalar var1, matrix var2 (or two scalars)
-						outvar = new Matrix(rows2, cols2);
-						double scalar1 = invar1.get(0, 0);
-						for (ci = 0; ci < cols2; ci++) {
-							for (ri = 0; ri < rows2; ri++) {
-								outvar.set(ri, ci, (invar2.get(ri, ci) + scalar1));
-							}
-						}
-					}
-				} else if(fnnamelc.equals("minus")) {
-					if (!isScalar(invar1) && !isScalar(invar2))
-					{
-						// with two matrices
-						outvar = invar1.minus(invar2);
-					} else if (!isScalar(invar1))
-					{
-						// with scalar var2, matrix var1
-						outvar = new Matrix(rows1, cols1);
-						double scalar2 = invar2.get(0, 0);
-						for (ci = 0; ci < cols1; ci++) {
-							for (ri = 0; ri < rows1; ri++) {
-								outvar.set(ri, ci, (invar1.get(ri, ci) - scalar2));
-							}
-						}
-					}
-					else
-					{
-						// with scalar var1, matrix var2 (or two scalars)
-						outvar = new Matrix(rows2, cols2);
-						double scalar1 = invar1.get(0, 0);
-						for (ci = 0; ci < cols2; ci++) {
-							for (ri = 0; ri < rows2; ri++) {
-								outvar.set(ri, ci, (scalar1 - invar2.get(ri, ci)));
-							}
-						}
-					}
+	 */
+	Matrix plus(Matrix invar1, Matrix invar2) {
+		int ri, ci;
+		int rows1 = invar1.getRowDimension();
+		int cols1 = invar1.getColumnDimension();
+		int rows2 = invar2.getRowDimension();
+		int cols2 = invar2.getColumnDimension();
+		Matrix outvar;
+		if (!isScalar(invar1) && !isScalar(invar2))
+		{
+			// with two matrices
+			outvar = invar1.plus(invar2);
+		} else if (!isScalar(invar1))
+		{
+			// with scalar var2, matrix var1
+			outvar = new Matrix(rows1, cols1);
+			double scalar2 = invar2.get(0, 0);
+			for (ci = 0; ci < cols1; ci++) {
+				for (ri = 0; ri < rows1; ri++) {
+					outvar.set(ri, ci, (invar1.get(ri, ci) + scalar2));
+				}
+			}
+		}
+		else
+		{
+			// with scalar var1, matrix var2 (or two scalars)
+			outvar = new Matrix(rows2, cols2);
+			double scalar1 = invar1.get(0, 0);
+			for (ci = 0; ci < cols2; ci++) {
+				for (ri = 0; ri < rows2; ri++) {
+					outvar.set(ri, ci, (invar2.get(ri, ci) + scalar1));
+				}
+			}
+		}
+		return outvar;
+	}
 
-				} else if(fnnamelc.equals("mtimes")) {
-					// matrix product
-					if (!isScalar(invar1) && !isScalar(invar2)) {   
-						outvar = invar1.times(invar2); 
-					} else if(!isScalar(invar1) & isScalar(invar2)) {
-						outvar = invar1.times( invar2.get(0, 0));
-					} else {
-						outvar = invar2.times(invar1.get(0, 0));
-					}                	               		
-
-				} else if(fnnamelc.equals("times")) {
-					// element pairwise product
-					if (!isScalar(invar1) && !isScalar(invar2)) {  
-						outvar = invar1.arrayTimes(invar2);
-					} else if (!isScalar(invar1)) {   
-						// matrix var1, scalar var2, 
-						outvar = invar1.times(invar2.get(0, 0));
-					} else {
-						// scalar var1, matrix or scalar var2
-						outvar = invar2.times(invar1.get(0, 0));        // *** CHECK
+	Matrix minus(Matrix invar1, Matrix invar2) {
+		int ri, ci;
+		int rows1 = invar1.getRowDimension();
+		int cols1 = invar1.getColumnDimension();
+		int rows2 = invar2.getRowDimension();
+		int cols2 = invar2.getColumnDimension();
+		Matrix outvar;
+		if (!isScalar(invar1) && !isScalar(invar2))
+		{
+			// with two matrices
+			outvar = invar1.minus(invar2);
+		} else if (!isScalar(invar1))
+		{
+			// with scalar var2, matrix var1
+			outvar = new Matrix(rows1, cols1);
+			double scalar2 = invar2.get(0, 0);
+			for (ci = 0; ci < cols1; ci++) {
+				for (ri = 0; ri < rows1; ri++) {
+					outvar.set(ri, ci, (invar1.get(ri, ci) - scalar2));
+				}
+			}
+		}
+		else
+		{
+			// with scalar var1, matrix var2 (or two scalars)
+			outvar = new Matrix(rows2, cols2);
+			double scalar1 = invar1.get(0, 0);
+			for (ci = 0; ci < cols2; ci++) {
+				for (ri = 0; ri < rows2; ri++) {
+					outvar.set(ri, ci, (scalar1 - invar2.get(ri, ci)));
+				}
+			}
+		}
+		return outvar;
+	}
+
+	Matrix mtimes(Matrix invar1, Matrix invar2) {
+		Matrix outvar;
+		// matrix product
+		if (!isScalar(invar1) && !isScalar(invar2)) {   
+			outvar = invar1.times(invar2); 
+		} else if(!isScalar(invar1) & isScalar(invar2)) {
+			outvar = invar1.times( invar2.get(0, 0));
+		} else {
+			outvar = invar2.times(invar1.get(0, 0));
+		}
+		return outvar;
+	}
+
+	Matrix times(Matrix invar1, Matrix invar2) {
+		Matrix outvar;
+		// element pairwise product
+		if (!isScalar(invar1) && !isScalar(invar2)) {  
+			outvar = invar1.arrayTimes(invar2);
+		} else if (!isScalar(invar1)) {   
+			// matrix var1, scalar var2, 
+			outvar = invar1.times(invar2.get(0, 0));
+		} else {
+			// scalar var1, matrix or scalar var2
+			outvar = invar2.times(invar1.get(0, 0));        // *** CHECK
+		}
+		return outvar;
+	}
+
+	Matrix rdivide(Matrix invar1, Matrix invar2) {
+		Matrix outvar;
+		// Right array divide                 Division of paired elements (./)
+		if (!isScalar(invar1) && !isScalar(invar2)) {   
+			// with two matrices
+			outvar = invar1.arrayRightDivide(invar2);
+		} else if (!isScalar(invar1)) {   
+			// matrix var1, scalar var2, 
+			outvar = invar1.times(1/invar2.get(0, 0));
+		} else  {   
+			// scalar var1, matrix or scalar var2,            *** CHECK: is there a nicer way? ***
+			outvar = invar2.arrayRightDivide(invar2).arrayRightDivide(invar2).times(invar1.get(0, 0));
+		}
+		return outvar;
+	}
+
+	Matrix power(Matrix invar1, Matrix invar2) {
+		int ri, ci;
+		int rows1 = invar1.getRowDimension();
+		int cols1 = invar1.getColumnDimension();
+		int rows2 = invar2.getRowDimension();
+		int cols2 = invar2.getColumnDimension();
+		Matrix outvar;
+		// Array power                       Exponent using paired elements (.^)
+		// with scalar var2, matrix var1
+		outvar = new Matrix(rows1, cols1);
+		if (!isScalar(invar1) && !isScalar(invar2)) {   
+			// with two matrices - must be same dims
+			outvar = new Matrix(rows1, cols1);
+			for (ci = 0; ci < cols1; ci++) {
+				for (ri = 0; ri < rows1; ri++) {
+					outvar.set(ri, ci, Math.pow(invar1.get(ri, ci), invar2.get(ri,  ci)));
+				}
+			}
+		} else if (!isScalar(invar1)) {
+			// scalar var2, matrix var1
+			outvar = new Matrix(rows1, cols1);
+			double scalar2 = invar2.get(0, 0);
+			for (ci = 0; ci < cols1; ci++) {
+				for (ri = 0; ri < rows1; ri++) {
+					outvar.set(ri, ci, Math.pow(invar1.get(ri, ci), scalar2));
+				}
+			}
+		} else {
+			// scalar var1, matrix var2, or both scalars
+			outvar = new Matrix(rows2, cols2);
+			double scalar1 = invar1.get(0, 0);
+			for (ci = 0; ci < cols2; ci++) {
+				for (ri = 0; ri < rows2; ri++) {
+					outvar.set(ri, ci, Math.pow(scalar1, invar2.get(ri, ci)));
+				}
+			}
+		}
+		return outvar;
+	}
+
+	Matrix cols(Matrix invar1, Matrix invar2) throws MatrixDimensionException {
+		int ri, ci;
+		int rows1 = invar1.getRowDimension();
+		int rows2 = invar2.getRowDimension();
+		int cols2 = invar2.getColumnDimension();
+		Matrix outvar;
+		// Index (1-based) into columns of matrix      Select or replicate columns  ( A(:,B) )                           
+		if (rows2 != 1) throw new MatrixDimensionException();
+		outvar = new Matrix(rows1, cols2);
+		for (ci = 0; ci < cols2; ci++) {
+			for (ri = 0; ri < rows1; ri++) {
+				outvar.set(ri, ci, invar1.get(ri, (int)(invar2.get(0, ci)-1)));
+			}
+		}
+		return outvar;
+	}
+
+	Matrix rows(Matrix invar1, Matrix invar2) throws MatrixDimensionException {
+		int ri, ci;
+		int cols1 = invar1.getColumnDimension();
+		int rows2 = invar2.getRowDimension();
+		int cols2 = invar2.getColumnDimension();
+		Matrix outvar;
+		// Index (1-based) into rows of matrix         Select or replicate rows     ( A(B,:) )
+		if (rows2 != 1) throw new MatrixDimensionException();
+		outvar = new Matrix(cols2, cols1);
+		for (ci = 0; ci < cols1; ci++) {
+			for (ri = 0; ri < cols2; ri++) {
+				outvar.set(ri, ci, invar1.get((int)(invar2.get(0, ci)-1), ci));
+			}
+		}
+		return outvar;
+	}
+
+	// Fused minus/power/mtimes(ones): squared distance between paired rows of A and B
+	Matrix rowsqdist(Matrix invar1, Matrix invar2) {
+		return rowSquaredDistance(invar1, invar2);
+	}
+
+	// Fused mtimes(ones,A)/minus/power/mtimes(ones): squared distance from each
+	// row of B (support vectors) to each row of A, using the precomputed row norms of B
+	Matrix pairsqdist(Matrix invar1, Matrix invar2, double[] rowNorms) throws MatrixDimensionException {
+		if (invar1.getColumnDimension() != invar2.getColumnDimension()) throw new MatrixDimensionException();
+		return pairSquaredDistance(invar1, invar2, rowNorms);
+	}
+
+	/*
+	 * Sparse-dense kernels for mtimes, times and plus with one sparse constant input (never a scalar,
+	 * see SparseMatrix.MIN_ELEMENTS), only the other, dense input is read.
+	 * returns null when no sparse kernel applies (e.g. both inputs sparse), to use the dense path.
+	 * The products skip zeros of the sparse input, so a NaN or Inf in the other input would be
+	 * lost (0*NaN is NaN): those inputs use the dense path as well.
+	 */
+	private Matrix evaluateSparse(int fn, Matrix invar1, Matrix invar2, SparseMatrix sparse1, SparseMatrix sparse2) {
+		if (!hasSparseKernel(fn) || (sparse1 != null && sparse2 != null)) return null;
+		SparseMatrix sparse = sparse1 != null ? sparse1 : sparse2;
+		Matrix other = sparse1 != null ? invar2 : invar1;
+		if (fn == FN_PLUS) {
+			if (isScalar(other)) return null;
+			return sparse.plus(other);
+		}
+		if (!isFinite(other)) return null;
+		if (isScalar(other)) return sparse.times(other.get(0, 0));
+		if (fn == FN_TIMES) return sparse.arrayTimes(other);
+		return sparse1 != null ? sparse1.times(other) : sparse2.leftTimes(other);
+	}
+
+	/*
+	 * True if evaluateSparse has a kernel for fn
+	 */
+	private static boolean hasSparseKernel(int fn) {
+		return fn == FN_MTIMES || fn == FN_TIMES || fn == FN_PLUS;
+	}
+
+	/*
+	 * True if m has no NaN or infinite elements
+	 */
+	private static boolean isFinite(Matrix m) {
+		for (double[] row : m.getArray()) {
+			for (double v : row) {
+				if (Double.isNaN(v) || Double.isInfinite(v)) return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Look up the FN_ code of a script function name (case insensitive)
+	 */
+	private int getFunctionCode(String fnname) throws UnknownFunctionException {
+		Integer fn = FUNCTIONS.get(fnname.toLowerCase());
+		if (fn == null) {
+			throw new UnknownFunctionException(fnname);
+		}
+		return fn;
+	}
+
+	/*
+	 * Compile the step scripts into a plan: lines are split and function names resolved once,
+	 * and every variable name is given a fixed slot in a register array.
+	 * Sparse constants are loaded as null slots and only read through their sparse form, unless a line
+	 * needs them dense (no sparse kernel, or both inputs sparse): those get one dense copy in the plan.
+	 * Leaves myPlan null (line by line interpretation) if any line can't be compiled.
+	 */
+	private void compilePlan() {
+		Map<String, Integer> slots = new HashMap<String, Integer>();
+		List<String> slotNames = new ArrayList<String>();
+		int nsteps = mySteps.size();
+		CompiledPlan plan = new CompiledPlan();
+		plan.constantSlots = new int[nsteps][];
+		plan.constantValues = new Matrix[nsteps][];
+		plan.code = new Instruction[nsteps][];
+		Map<String, SparseMatrix> sparse = new HashMap<String, SparseMatrix>();  // sparse constants currently in the workspace
+		Map<SparseMatrix, Matrix> denseCopies = new IdentityHashMap<SparseMatrix, Matrix>();  // sparse constants needed dense
+		try {
+			plan.inputSlot = getSlot(slots, slotNames, "x");
+			for (int i = 0; i < nsteps; i++) {
+				ScriptStep onestep = mySteps.get(i);
+				Workspace constants = onestep.getMyConstants();
+				List<String> names = constants.getVarList();
+				plan.constantSlots[i] = new int[names.size()];
+				plan.constantValues[i] = new Matrix[names.size()];
+				for (int k = 0; k < names.size(); k++) {
+					plan.constantSlots[i][k] = getSlot(slots, slotNames, names.get(k));
+					SparseMatrix sparseValue = constants.getSparseVar(names.get(k));
+					plan.constantValues[i][k] = sparseValue == null ? constants.getVar(names.get(k)) : null;
+					sparse.put(names.get(k), sparseValue);
+				}
+
+				List<String> script = onestep.getMyScript();
+				plan.code[i] = new Instruction[script.size()];
+				for (int k = 0; k < script.size(); k++) {
+					String[] splt = splitScriptLine(script.get(k));
+					int fn = getFunctionCode(splt[1]);
+					int in2 = splt[3].length() == 0 ? -1 : getSlot(slots, slotNames, splt[3]);
+					SparseMatrix sparse1 = sparse.get(splt[2]), sparse2 = sparse.get(splt[3]);
+					if (!hasSparseKernel(fn) || (sparse1 != null && sparse2 != null)) {
+						if (sparse1 != null) denseCopies.put(sparse1, null);
+						if (sparse2 != null) denseCopies.put(sparse2, null);
 					}
-				}  else if(fnnamelc.equals("rdivide")) {
-					// Right array divide                 Division of paired elements (./)
-					if (!isScalar(invar1) && !isScalar(invar2)) {   
-						// with two matrices
-						outvar = invar1.arrayRightDivide(invar2);
-					} else if (!isScalar(invar1)) {   
-						// matrix var1, scalar var2, 
-						outvar = invar1.times(1/invar2.get(0, 0));
-					} else  {   
-						// scalar var1, matrix or scalar var2,            *** CHECK: is there a nicer way? ***
-						outvar = invar2.arrayRightDivide(invar2).arrayRightDivide(invar2).times(invar1.get(0, 0));
-					}                 	
-				}  else if(fnnamelc.equals("power")) {
-					// Array power                       Exponent using paired elements (.^)
-					// with scalar var2, matrix var1
-					outvar = new Matrix(rows1, cols1);
-					if (!isScalar(invar1) && !isScalar(invar2)) {   
-						// with two matrices - must be same dims
-						outvar = new Matrix(rows1, cols1);
-						for (ci = 0; ci < cols1; ci++) {
-							for (ri = 0; ri < rows1; ri++) {
-								outvar.set(ri, ci, Math.pow(invar1.get(ri, ci), invar2.get(ri,  ci)));
-							}
-						}
-					} else if (!isScalar(invar1)) {
-						// scalar var2, matrix var1
-						outvar = new Matrix(rows1, cols1);
-						double scalar2 = invar2.get(0, 0);
-						for (ci = 0; ci < cols1; ci++) {
-							for (ri = 0; ri < rows1; ri++) {
-								outvar.set(ri, ci, Math.pow(invar1.get(ri, ci), scalar2));
-							}
-						}
-					} else {
-						// scalar var1, matrix var2, or both scalars
-						outvar = new Matrix(rows2, cols2);
-						double scalar1 = invar1.get(0, 0);
-						for (ci = 0; ci < cols2; ci++) {
-							for (ri = 0; ri < rows2; ri++) {
-								outvar.set(ri, ci, Math.pow(scalar1, invar2.get(ri, ci)));
-							}
-						}
-					}                 
-				} else if(fnnamelc.equals("cols")) {
-					// Index (1-based) into columns of matrix      Select or replicate columns  ( A(:,B) )                           
-					if (rows2 != 1) throw new MatrixDimensionException();
-					outvar = new Matrix(rows1, cols2);
-					for (ci = 0; ci < cols2; ci++) {
-						for (ri = 0; ri < rows1; ri++) {
-							outvar.set(ri, ci, invar1.get(ri, (int)(invar2.get(0, ci)-1)));
-						}
+					plan.code[i][k] = new Instruction(fn, getSlot(slots, slotNames, splt[0]),
+							getSlot(slots, slotNames, splt[2]), in2, sparse1, sparse2,
+							onestep.getMyRowNorms().get(splt[3]));
+					sparse.remove(splt[0]);   // no longer the constant once the script assigns it
+				}
+			}
+		} catch (Exception e) {
+			myPlan = null;   // apply reports the error from the script itself
+			return;
+		}
+
+		//load the sparse constants needed dense as one shared dense copy
+		for (int i = 0; i < nsteps; i++) {
+			Workspace constants = mySteps.get(i).getMyConstants();
+			for (int k = 0; k < plan.constantSlots[i].length; k++) {
+				SparseMatrix sparseValue = constants.getSparseVar(slotNames.get(plan.constantSlots[i][k]));
+				if (sparseValue != null && denseCopies.containsKey(sparseValue)) {
+					if (denseCopies.get(sparseValue) == null) {
+						denseCopies.put(sparseValue, sparseValue.toMatrix());
 					}
+					plan.constantValues[i][k] = denseCopies.get(sparseValue);
+				}
+			}
+		}
 
-				} else if(fnnamelc.equals("rows")) {
-					// Index (1-based) into rows of matrix         Select or replicate rows     ( A(B,:) )
-					if (rows2 != 1) throw new MatrixDimensionException();
-					outvar = new Matrix(cols2, cols1);
-					for (ci = 0; ci < cols1; ci++) {
-						for (ri = 0; ri < cols2; ri++) {
-							outvar.set(ri, ci, invar1.get((int)(invar2.get(0, ci)-1), ci));
-						}
-					}                	               		
+		//sparse constants left in a slot without a dense value at the end
+		List<Integer> sparseSlots = new ArrayList<Integer>();
+		List<SparseMatrix> sparseValues = new ArrayList<SparseMatrix>();
+		for (Map.Entry<String, SparseMatrix> entry : sparse.entrySet()) {
+			if (entry.getValue() != null && !denseCopies.containsKey(entry.getValue())) {
+				sparseSlots.add(slots.get(entry.getKey()));
+				sparseValues.add(entry.getValue());
+			}
+		}
+		plan.sparseSlots = new int[sparseSlots.size()];
+		for (int k = 0; k < sparseSlots.size(); k++) {
+			plan.sparseSlots[k] = sparseSlots.get(k);
+		}
+		plan.sparseValues = sparseValues.toArray(new SparseMatrix[sparseValues.size()]);
+		plan.denseCopies = denseCopies;
 
-				} else {
-					throw new UnknownFunctionException(fnname);  
+		plan.slotNames = slotNames.toArray(new String[slotNames.size()]);
+		myPlan = plan;
+	}
+
+	private static int getSlot(Map<String, Integer> slots, List<String> slotNames, String name) {
+		Integer slot = slots.get(name);
+		if (slot == null) {
+			slot = slotNames.size();
+			slots.put(name, slot);
+			slotNames.add(name);
+		}
+		return slot;
+	}
+
+	/*
+	 * Summarize the sparse constants of all steps: how many, the bytes of their sparse form against
+	 * the dense bytes they replace, and the dense copies the compiled plan still keeps
+	 */
+	private String describeSparseConstants() {
+		int count = 0;
+		long denseBytes = 0, sparseBytes = 0;
+		for (ScriptStep onestep : mySteps) {
+			Workspace constants = onestep.getMyConstants();
+			for (String name : constants.getVarList()) {
+				SparseMatrix sm = constants.getSparseVar(name);
+				if (sm == null) continue;
+				count++;
+				denseBytes += sm.getDenseMemorySize();
+				sparseBytes += sm.getMemorySize();
+			}
+		}
+		if (count == 0) {
+			return "No sparse constants";
+		}
+		int copies = 0;
+		long copyBytes = 0;
+		if (myPlan != null) {
+			for (SparseMatrix sm : myPlan.denseCopies.keySet()) {
+				copies++;
+				copyBytes += sm.getDenseMemorySize();
+			}
+		}
+		return String.format("%d sparse constants, %d bytes sparse instead of %d bytes dense"
+				+ " (%d also kept dense for functions without a sparse kernel): %d bytes saved",
+				count, sparseBytes, denseBytes, copies, denseBytes - sparseBytes - copyBytes);
+	}
+
+	// Number and memory saving of the constants stored sparse at load
+	public String getSparseConstantsReport() {
+		return mySparseReport;
+	}
+
+	/*
+	 * Time the sparse product against the dense one for every sparse constant, on a random
+	 * sample multiplied by the constant (x*C). Each is warmed up first, so this takes a while
+	 * and is only run on request.
+	 * returns total dense time / total sparse time (1 if there are no sparse constants)
+	 */
+	public double measureSparseSpeedup(int repetitions) {
+		long denseTime = 0, sparseTime = 0;
+		for (ScriptStep onestep : mySteps) {
+			Workspace constants = onestep.getMyConstants();
+			for (String name : constants.getVarList()) {
+				SparseMatrix sm = constants.getSparseVar(name);
+				if (sm == null) continue;
+				Matrix dense = sm.toMatrix();
+				Matrix sample = Matrix.random(1, sm.getRowDimension());
+				for (int rep = 0; rep < repetitions; rep++) {   // warm-up
+					sample.times(dense);
+					sm.leftTimes(sample);
+				}
+				long start = System.nanoTime();
+				for (int rep = 0; rep < repetitions; rep++) {
+					sample.times(dense);
 				}
+				denseTime += System.nanoTime() - start;
+				start = System.nanoTime();
+				for (int rep = 0; rep < repetitions; rep++) {
+					sm.leftTimes(sample);
+				}
+				sparseTime += System.nanoTime() - start;
+			}
+		}
+		return sparseTime == 0 ? 1 : denseTime / (double) sparseTime;
+	}
 
-				//store result into workspace
-				myWorkspace.setVar(outvarname, outvar);
+	/*
+	 * Generate a hidden class running the compiled plan (see CodeGenerator).
+	 * Leaves myCode null (plan interpretation) if there is no plan or generation fails,
+	 * e.g. the script is too long for one method or the bytecode library is missing.
+	 */
+	private void generateCode() {
+		myCode = null;
+		isCodeGenerationTried = true;
+		if (myPlan == null) return;
+		try {
+			myCode = CodeGenerator.generate(this, myPlan);
+		} catch (Exception e) {
+			myCode = null;
+		} catch (LinkageError e) {
+			myCode = null;
+		}
+	}
+
+	// True if code was generated for the compiled plan (only done once it is selected)
+	public boolean isCodeGenerated() {
+		return myCode != null;
+	}
+
+	// Selects the generated code or interpretation of the compiled plan (default),
+	// the code is generated the first time it is selected
+	public void setUseGeneratedCode(boolean useGeneratedCode) {
+		this.useGeneratedCode = useGeneratedCode;
+		this.isApplied = false;
+		if (useGeneratedCode && !isCodeGenerationTried) {
+			generateCode();
+		}
+	}
+
+	// True if the script was compiled into a plan at load
+	public boolean isPlanCompiled() {
+		return myPlan != null;
+	}
+
+	// Selects the compiled plan (default) or line by line interpretation of the script,
+	// generated code is only used together with the compiled plan
+	public void setUseCompiledPlan(boolean useCompiledPlan) {
+		this.useCompiledPlan = useCompiledPlan;
+		this.isApplied = false;
+	}
+
+	/*
+	 * Split one script line of the form "out = fnname(invar1name,invar2name);"
+	 * returns {outvarname, fnname, invar1name, invar2name} with invar2name "" for single input functions
+	 */
+	private String[] splitScriptLine(String oneline) throws BadScriptCommand {
+		String[] splt = oneline.split("[=]");
+		String outvarname = splt[0].trim();
+		if( splt.length<2 ) {
+			throw new BadScriptCommand(oneline);
+		}
+
+		splt = splt[1].split("[(]");
+		String fnname = splt[0].trim();
+		if(splt.length<2) {
+			throw new BadScriptCommand(oneline);
+		}
+
+		splt = splt[1].split("[)]");   //invar1name,invar2name);
+		splt = splt[0].split("[,]");   //invar1name,invar2name
+		String invar1name = splt[0].trim();
+		String invar2name = "";
+		if(splt.length > 1) {
+			invar2name = splt[1].trim(); 
+		}
+		return new String[] { outvarname, fnname, invar1name, invar2name };
+	}
+
+	/*
+	 * Squared euclidean distance between paired rows: out(i) = sum_j (a(i,j)-b(i,j))^2
+	 * returns rows x 1 matrix, without materializing the difference matrix.
+	 * A scalar a or b is subtracted from every element of the other, as minus does.
+	 */
+	private static Matrix rowSquaredDistance(Matrix a, Matrix b) {
+		boolean scalarA = a.getRowDimension() == 1 && a.getColumnDimension() == 1;
+		boolean scalarB = b.getRowDimension() == 1 && b.getColumnDimension() == 1;
+		Matrix shape = scalarA ? b : a;
+		if (!scalarA && !scalarB && (a.getRowDimension() != b.getRowDimension()
+				|| a.getColumnDimension() != b.getColumnDimension())) {
+			throw new IllegalArgumentException("Matrix dimensions must agree.");
+		}
+		int rows = shape.getRowDimension();
+		int cols = shape.getColumnDimension();
+		double[][] aa = a.getArray();
+		double[][] ba = b.getArray();
+		Matrix outvar = new Matrix(rows, 1);
+		double[][] oa = outvar.getArray();
+		for (int ri = 0; ri < rows; ri++) {
+			double[] arow = aa[scalarA ? 0 : ri];
+			double[] brow = ba[scalarB ? 0 : ri];
+			double sum = 0;
+			for (int ci = 0; ci < cols; ci++) {
+				double d = arow[scalarA ? 0 : ci] - brow[scalarB ? 0 : ci];
+				sum += d * d;
 			}
+			oa[ri][0] = sum;
 		}
+		return outvar;
+	}
 
-		//indicate model was applied and exit
-		isApplied = true;     
+	/*
+	 * Squared euclidean distance between every row of b and every row of a, computed as
+	 * ||b(i,:)||^2 + ||a(j,:)||^2 - 2*b(i,:)*a(j,:)' with a single matrix product.
+	 * bNorms holds the precomputed squared row norms of b (computed here when null).
+	 * returns rows(b) x rows(a) matrix (rows(b) x 1 for a single sample, as the unfused script)
+	 */
+	private static Matrix pairSquaredDistance(Matrix a, Matrix b, double[] bNorms) {
+		if (bNorms == null) {
+			bNorms = squaredRowNorms(b);
+		}
+		double[] aNorms = squaredRowNorms(a);
+		Matrix outvar = b.times(a.transpose());
+		double[][] oa = outvar.getArray();
+		for (int ri = 0; ri < oa.length; ri++) {
+			double[] orow = oa[ri];
+			for (int ci = 0; ci < orow.length; ci++) {
+				// clamp rounding error, a distance can't be negative
+				orow[ci] = Math.max(0, bNorms[ri] + aNorms[ci] - 2 * orow[ci]);
+			}
+		}
+		return outvar;
+	}
+
+	/*
+	 * Sum of squares of each row of m
+	 */
+	private static double[] squaredRowNorms(Matrix m) {
+		double[][] ma = m.getArray();
+		double[] result = new double[ma.length];
+		for (int ri = 0; ri < ma.length; ri++) {
+			double sum = 0;
+			for (double v : ma[ri]) {
+				sum += v * v;
+			}
+			result[ri] = sum;
+		}
+		return result;
+	}
+
+	/*
+	 * Replace squared-distance sequences emitted for SVM/SVMDA kernels with a single fused
+	 * function. Recognized (consecutive lines, intermediates not used elsewhere):
+	 *     [R = mtimes(ones, X);]  D = minus(R, SV);  P = power(D, 2) or times(D, D);  S = mtimes(P, ones);
+	 * Without the replication line this becomes S = rowsqdist(A, B), with it S = pairsqdist(X, SV).
+	 * One of the minus operands must be a non-scalar constant (SV) whose columns match the ones vector.
+	 */
+	private void fuseSquaredDistances() {
+		Workspace known = new Workspace();   // constants visible so far
+		List<String[]> all = new ArrayList<String[]>();
+		try {
+			for (ScriptStep step : mySteps) {
+				for (String oneline : step.getMyScript()) {
+					all.add(splitScriptLine(oneline));
+				}
+			}
+		} catch (BadScriptCommand e) {
+			return;   // leave unfused, apply will report the bad line
+		}
+		// constants shadowed by a script result can't be trusted at preparse time
+		Set<String> assigned = new HashSet<String>();
+		for (String[] parts : all) {
+			assigned.add(parts[0]);
+		}
+
+		// lines replaced by a fused line (by index into all), or dropped (null)
+		Map<Integer, String> rewrite = new HashMap<Integer, String>();
+		int li = 0;
+		for (ScriptStep step : mySteps) {
+			known.setVar(step.getMyConstants());
+			for (String name : assigned) {
+				known.setVar(name, null);
+			}
+			int nlines = step.getMyScript().size();
+			for (int k = 0; k + 2 < nlines; k++) {
+				int i = li + k;
+				String[] minus = all.get(i), pow = all.get(i+1), sum = all.get(i+2);
+				if (rewrite.containsKey(i) || !minus[1].equalsIgnoreCase("minus")) continue;
+				String d = minus[0];
+				boolean squares = (pow[1].equalsIgnoreCase("power") && pow[2].equals(d) && isConstantValue(known, pow[3], 2.0))
+						|| (pow[1].equalsIgnoreCase("times") && pow[2].equals(d) && pow[3].equals(d));
+				if (!squares || !sum[1].equalsIgnoreCase("mtimes") || !sum[2].equals(pow[0])
+						|| !isConstantValue(known, sum[3], 1.0) || known.getVar(sum[3]).getColumnDimension() != 1) continue;
+				if (isReferenced(all, d, i+1, i+2) || isReferenced(all, pow[0], i+2, i+3)) continue;
+
+				// one side of the minus must be a known non-scalar constant, with as many columns as
+				// the ones vector has rows, so the fused result has the shape the unfused lines give
+				int nsum = known.getVar(sum[3]).getRowDimension();
+				Matrix c1 = known.getVar(minus[2]), c2 = known.getVar(minus[3]);
+				String sv = isShapeFixed(c2, nsum) ? minus[3] : isShapeFixed(c1, nsum) ? minus[2] : null;
+				if (sv == null) continue;
+				Matrix svm = known.getVar(sv);
+
+				// look for replication of a single sample on the line before
+				String fused = null;
+				if (k > 0 && !rewrite.containsKey(i-1)) {
+					String[] rep = all.get(i-1);
+					String other = sv.equals(minus[2]) ? minus[3] : minus[2];
+					if (rep[0].equals(other) && rep[1].equalsIgnoreCase("mtimes") && isConstantValue(known, rep[2], 1.0)
+							&& known.getVar(rep[2]).getColumnDimension() == 1
+							&& known.getVar(rep[2]).getRowDimension() == svm.getRowDimension()
+							&& !isReferenced(all, rep[0], i, i+1)) {
+						fused = sum[0] + " = " + FUSED_PAIR_SQDIST + "(" + rep[3] + "," + sv + ");";
+						rewrite.put(i-1, null);
+						step.getMyRowNorms().put(sv, squaredRowNorms(svm));
+					}
+				}
+				if (fused == null) {
+					fused = sum[0] + " = " + FUSED_ROW_SQDIST + "(" + minus[2] + "," + minus[3] + ");";
+				}
+				rewrite.put(i, null);
+				rewrite.put(i+1, null);
+				rewrite.put(i+2, fused);
+			}
+			li += nlines;
+		}
+
+		if (rewrite.isEmpty()) return;
+		li = 0;
+		for (ScriptStep step : mySteps) {
+			List<String> script = new ArrayList<String>();
+			for (String oneline : step.getMyScript()) {
+				if (!rewrite.containsKey(li)) {
+					script.add(oneline);
+				} else if (rewrite.get(li) != null) {
+					script.add(rewrite.get(li));
+				}
+				li++;
+			}
+			step.setMyScript(script);
+		}
+	}
+
+	/*
+	 * True if m is a known non-scalar constant with cols columns
+	 */
+	private boolean isShapeFixed(Matrix m, int cols) {
+		return m != null && !isScalar(m) && m.getColumnDimension() == cols;
+	}
+
+	/*
+	 * True if name is a known constant whose elements all equal value
+	 */
+	private static boolean isConstantValue(Workspace known, String name, double value) {
+		Matrix m = known.getVar(name);
+		if (m == null) return false;
+		for (double[] row : m.getArray()) {
+			for (double v : row) {
+				if (v != value) return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * True if the variable name is used as an input by any line other than the lines [from, to)
+	 * or is reassigned anywhere, in which case it must stay in the workspace
+	 */
+	private static boolean isReferenced(List<String[]> lines, String name, int from, int to) {
+		int n = 0;
+		for (int i = 0; i < lines.size(); i++) {
+			String[] parts = lines.get(i);
+			if (parts[0].equals(name)) n++;
+			if (i >= from && i < to) continue;
+			if (parts[2].equals(name) || parts[3].equals(name)) return true;
+		}
+		return n > 1;
 	}
 
 	public Workspace getMyWorkspace() {       
@@ -325,11 +1017,10 @@ public class ModelInterpreter {
 
 	private void preparse(Document doc) {
 		NodeList nodeList = null;
-		int rows, cols;
-		Matrix mItem = new Matrix(0, 0);
 		//		String oneline;
 		String[] splt = null;
 		ScriptStep stepInfo = null;
+		List<PendingConstant> pending = new ArrayList<PendingConstant>();
 		//		List<Integer> sz = new ArrayList<Integer>();
 		try {
 			//get expected data size
@@ -426,26 +1117,25 @@ public class ModelInterpreter {
 								throw new UnparsableConstant(oneconstant.getNodeName(), stepInfo.getMyDescription());
 							}
 
-							rows = dims[0];
-							cols = dims[1];
-							mItem = new Matrix(rows, cols);
-
-							String[] vals = nodetext.split("[,;]");
-							int ci = 0;
-							int ri = 0;
-							for(int i=0; i<vals.length; i++) {
-								//								ri = i%cols;
-								//								ci = i/cols;
-								ci = i%cols;
-								ri = i/cols;
-								mItem.set(ri, ci, Double.parseDouble(vals[i]));
-							}
-							if (ci != cols - 1 | ri != rows - 1) {
-								throw new WrongSizeConstant(oneconstant.getNodeName(), stepInfo.getMyDescription());
+							final String name = oneconstant.getNodeName();
+							final String description = stepInfo.getMyDescription();
+							final String text = nodetext;
+							final int crows = dims[0];
+							final int ccols = dims[1];
+							if (nodetext.length() < PARALLEL_PARSE_CHARS) {
+								addConstant(stepInfo, workspace, name, parseConstant(name, description, text, crows, ccols));
+							} else {
+								//large constant, parse it in parallel with the rest of the model
+								//(a FutureTask, so get() reports the parse error itself as the cause)
+								FutureTask<Matrix> value = new FutureTask<Matrix>(new Callable<Matrix>() {
+									public Matrix call() throws WrongSizeConstant {
+										return parseConstant(name, description, text, crows, ccols);
+									}
+								});
+								ForkJoinPool.commonPool().execute(value);
+								pending.add(new PendingConstant(stepInfo, workspace, name, value));
 							}
 
-							workspace.setVar(oneconstant.getNodeName(), mItem);
-
 						}
 					} // step constants loop
 					stepInfo.setMyConstants(workspace);
@@ -471,10 +1161,70 @@ public class ModelInterpreter {
 
 				}
 			} // steps loop
+
+			//collect the constants parsed in parallel
+			for (PendingConstant pc : pending) {
+				try {
+					addConstant(pc.step, pc.workspace, pc.name, pc.value.get());
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+					throw e;
+				}
+			}
+
+			//replace SVM kernel distance sequences with fused functions
+			fuseSquaredDistances();
+
+			//resolve functions and variables once, rather than on every apply
+			compilePlan();
+
+			//summarize the constants stored sparse for this model
+			mySparseReport = describeSparseConstants();
 		} catch (Exception e) {
+			myLoadError = e;
 			e.printStackTrace();
 		}
 	}
+
+	// Error which stopped the model file from loading (null if it loaded), the model can't be applied then
+	public Exception getLoadError() {
+		return myLoadError;
+	}
+
+	/*
+	 * Parse the text of a constant, values separated by "," and rows by ";"
+	 * returns rows x cols matrix
+	 */
+	private Matrix parseConstant(String name, String stepDescription, String nodetext, int rows, int cols) throws WrongSizeConstant {
+		Matrix mItem = new Matrix(rows, cols);
+
+		String[] vals = nodetext.split("[,;]");
+		int ci = 0;
+		int ri = 0;
+		for(int i=0; i<vals.length; i++) {
+			//		ri = i%cols;
+			//		ci = i/cols;
+			ci = i%cols;
+			ri = i/cols;
+			mItem.set(ri, ci, Double.parseDouble(vals[i]));
+		}
+		if (ci != cols - 1 | ri != rows - 1) {
+			throw new WrongSizeConstant(name, stepDescription);
+		}
+		return mItem;
+	}
+
+	/*
+	 * Store a parsed constant in the step's constants, only in sparse form when it is mostly zero
+	 */
+	private void addConstant(ScriptStep stepInfo, Workspace workspace, String name, Matrix mItem) {
+		if (SparseMatrix.isSparse(mItem)) {
+			workspace.setSparseVar(name, new SparseMatrix(mItem));
+		} else {
+			workspace.setVar(name, mItem);
+		}
+	}
+
 	/*
 	 * Get the size attribute from a node
 	 * returns vector containing pair of integers representing the size vector
@@ -524,6 +1274,7 @@ public class ModelInterpreter {
 		private List<String> myScript = new ArrayList<String>();
 		private String myDescription = "";
 		private Workspace myConstants = new Workspace();
+		private Map<String, double[]> myRowNorms = new HashMap<String, double[]>();
 
 		public ScriptStep() { }
 
@@ -550,6 +1301,76 @@ public class ModelInterpreter {
 		public void setMyConstants(Workspace myConstants) {
 			this.myConstants = myConstants;
 		}
+
+		public Map<String, double[]> getMyRowNorms() {
+			return myRowNorms;
+		}
+	}
+
+	/*
+	 * A constant still being parsed in parallel
+	 */
+	static class PendingConstant
+	{
+		final ScriptStep step;
+		final Workspace workspace;
+		final String name;
+		final Future<Matrix> value;
+
+		PendingConstant(ScriptStep step, Workspace workspace, String name, Future<Matrix> value) {
+			this.step = step;
+			this.workspace = workspace;
+			this.name = name;
+			this.value = value;
+		}
+	}
+
+	/*
+	 * One compiled script line: out = fn(in1,in2), as slots into the register array
+	 */
+	static class Instruction
+	{
+		final int fn;
+		final int out;
+		final int in1;
+		final int in2;            // -1 for single input functions
+		final SparseMatrix sparse1;  // sparse form of in1/in2 when it is a sparse constant (or null)
+		final SparseMatrix sparse2;
+		final double[] rowNorms;  // precomputed row norms of in2 for pairsqdist (or null)
+
+		Instruction(int fn, int out, int in1, int in2, SparseMatrix sparse1, SparseMatrix sparse2, double[] rowNorms) {
+			this.fn = fn;
+			this.out = out;
+			this.in1 = in1;
+			this.in2 = in2;
+			this.sparse1 = sparse1;
+			this.sparse2 = sparse2;
+			this.rowNorms = rowNorms;
+		}
+	}
+
+	/*
+	 * Entry point of the class generated for a compiled plan,
+	 * returns the value of every slot (null if unset)
+	 */
+	interface GeneratedCode
+	{
+		Matrix[] run(Matrix x) throws MatrixDimensionException;
+	}
+
+	/*
+	 * Compiled form of all steps, indexed by step
+	 */
+	static class CompiledPlan
+	{
+		String[] slotNames;
+		int inputSlot;
+		int[][] constantSlots;
+		Matrix[][] constantValues;   // null for sparse constants only read in sparse form
+		Instruction[][] code;
+		int[] sparseSlots;           // slots holding such a sparse constant at the end, and its value
+		SparseMatrix[] sparseValues;
+		Map<SparseMatrix, Matrix> denseCopies;  // sparse constants loaded dense, and their dense copy
 	}
 
 	public Matrix getInputData() {
@@ -558,6 +1379,35 @@ public class ModelInterpreter {
 
 	public void setInputData(Matrix inputData) {
 		this.myData = inputData;
+		this.isApplied = false;   // new data, results must be recalculated
+	}
+
+	// Clears the input data and results, as if the model had just been loaded
+	public void reset() {
+		myData = new Matrix(0, 0);
+		myWorkspace.clearAll();
+		isApplied = false;
+	}
+
+	/*
+	 * Apply the model to the rows of data in chunks of chunkRows samples, appending the selected
+	 * variables of each chunk's results to sink instead of keeping them all in memory.
+	 * Use chunkRows = 1 for models which only accept a single sample (e.g. SVM, SVMDA).
+	 */
+	public void apply(Matrix data, int chunkRows, ColumnarResultWriter sink) throws InputDataMissing, BadScriptCommand, MatrixDimensionException, UnknownFunctionException, IOException {
+		if (chunkRows < 1) {
+			throw new IllegalArgumentException("chunkRows must be at least 1");
+		}
+		int nrows = data.getRowDimension();
+		if (nrows == 0) {
+			throw new InputDataMissing();
+		}
+		int lastcol = data.getColumnDimension() - 1;
+		for (int ri = 0; ri < nrows; ri += chunkRows) {
+			setInputData(data.getMatrix(ri, Math.min(ri + chunkRows, nrows) - 1, 0, lastcol));
+			apply();
+			sink.append(myWorkspace);
+		}
 	}
 
 	@SuppressWarnings("serial")
@@ -662,6 +1512,8 @@ public class ModelInterpreter {
 			String modeltype = test.getModelType();
 			System.out.println("Model type: " + modeltype);
 			System.out.println("Expected Data Size:" + test.getInputDataSize()); //getInputDataSize());
+			System.out.println("Sparse constants: " + test.getSparseConstantsReport());
+			System.out.println(String.format("Sparse x*C speedup: %.1fx", test.measureSparseSpeedup(1000)));
 
 			//create data to pass to the model
 			Matrix inmatrix = new Matrix(1, test.getInputDataSize());
@@ -678,6 +1530,9 @@ public class ModelInterpreter {
 			//how long did it take to apply the model?
 			System.out.println("apply() Elapsed Time (ms): " + (System.currentTimeMillis() - startTimeApply));
 
+			//how the model runs (see ModelBenchmark for timings of each)
+			System.out.println("Compiled plan: " + test.isPlanCompiled() + ", generated code: " + test.isCodeGenerated());
+
 			//Typical outputs for a PLS model:
 			Workspace res = test.getResults();
 			if(modeltype.compareToIgnoreCase("PCA")!=0 & modeltype.compareToIgnoreCase("SVMDA")!=0) {
@@ -0,0 +1,197 @@
+package evri.eigenvectorinterpreter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import Jama.Matrix;
+
+public class ModelLoader {
+
+	// warm-up runs batches of WARMUP_BATCH applies until WARMUP_STABLE consecutive batches are
+	// within WARMUP_TOLERANCE of the previous one (JIT compilation has settled), at most WARMUP_MAX_BATCHES
+	public static final int WARMUP_BATCH = 100;
+	public static final int WARMUP_STABLE = 3;
+	public static final double WARMUP_TOLERANCE = 0.1;
+	public static final int WARMUP_MAX_BATCHES = 100;
+
+	private int threads;
+	private boolean warmup = true;
+
+	// results by file name
+	private Map<String, ModelInterpreter> models = new TreeMap<String, ModelInterpreter>();
+	private Map<String, Long> loadTimes = new TreeMap<String, Long>();
+	private Map<String, Long> warmupTimes = new TreeMap<String, Long>();
+	private Map<String, Exception> failures = new TreeMap<String, Exception>();
+
+	// Loads with one thread per available processor
+	public ModelLoader() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public ModelLoader(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	// Enables (default) or disables warm-up of each model after it is loaded
+	public void setWarmup(boolean warmup) {
+		this.warmup = warmup;
+	}
+
+	// Loads and warms up every .xml Model_Exporter file in directory in parallel.
+	// Files which fail to load or apply are reported by getFailures() instead of getModels().
+	public void loadDirectory(File directory) throws InterruptedException {
+		File[] list = directory.listFiles();
+		if (list == null) {
+			throw new IllegalArgumentException("Not a directory: " + directory);
+		}
+		List<File> files = new ArrayList<File>();
+		for (File file : list) {
+			if (file.isFile() && file.getName().toLowerCase().endsWith(".xml")) {
+				files.add(file);
+			}
+		}
+		load(files);
+	}
+
+	// Loads and warms up the given Model_Exporter files in parallel
+	public void load(List<File> files) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, files.size())));
+		try {
+			List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+			for (final File file : files) {
+				results.add(executor.submit(new Callable<long[]>() {
+					public long[] call() throws Exception {
+						return loadOne(file);
+					}
+				}));
+			}
+			for (int i = 0; i < files.size(); i++) {
+				String name = files.get(i).getName();
+				try {
+					long[] times = results.get(i).get();
+					loadTimes.put(name, times[0]);
+					warmupTimes.put(name, times[1]);
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					failures.put(name, cause instanceof Exception ? (Exception) cause : e);
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/*
+	 * Load and warm up one model
+	 * returns {load time, warm-up time} in ms
+	 */
+	private long[] loadOne(File file) throws Exception {
+		long startTime = System.nanoTime();
+		ModelInterpreter model = new ModelInterpreter(file.getPath());
+		if (model.getLoadError() != null) {
+			throw model.getLoadError();
+		}
+		long loadTime = (System.nanoTime() - startTime) / 1000000;
+
+		long warmupTime = 0;
+		if (warmup) {
+			startTime = System.nanoTime();
+			warmup(model);
+			warmupTime = (System.nanoTime() - startTime) / 1000000;
+		}
+		synchronized (this) {
+			models.put(file.getName(), model);
+		}
+		return new long[] { loadTime, warmupTime };
+	}
+
+	/*
+	 * Apply the model to random samples of its declared input size until the time per batch settles,
+	 * then clear the sample and its results so the model is left as loaded
+	 */
+	private static void warmup(ModelInterpreter model) throws Exception {
+		Matrix sample = Matrix.random(1, model.getInputDataSize());
+		long previous = -1;
+		int stable = 0;
+		try {
+			for (int batch = 0; batch < WARMUP_MAX_BATCHES && stable < WARMUP_STABLE; batch++) {
+				long startTime = System.nanoTime();
+				for (int i = 0; i < WARMUP_BATCH; i++) {
+					model.setInputData(sample);
+					model.apply();
+				}
+				long elapsed = System.nanoTime() - startTime;
+				if (previous >= 0 && Math.abs(elapsed - previous) <= WARMUP_TOLERANCE * previous) {
+					stable++;
+				} else {
+					stable = 0;
+				}
+				previous = elapsed;
+			}
+		} finally {
+			model.reset();
+		}
+	}
+
+	// Loaded models by file name
+	public Map<String, ModelInterpreter> getModels() {
+		return Collections.unmodifiableMap(models);
+	}
+
+	public ModelInterpreter getModel(String filename) {
+		return models.get(filename);
+	}
+
+	// Files which couldn't be loaded or warmed up, with the error
+	public Map<String, Exception> getFailures() {
+		return Collections.unmodifiableMap(failures);
+	}
+
+	// Time (ms) to parse and compile the model in filename, null if it wasn't loaded (see getFailures)
+	public Long getLoadTime(String filename) {
+		return loadTimes.get(filename);
+	}
+
+	// Time (ms) spent warming up the model in filename, null if it wasn't loaded (see getFailures)
+	public Long getWarmupTime(String filename) {
+		return warmupTimes.get(filename);
+	}
+
+	// One line per file with load and warm-up times, or the error
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		for (String name : loadTimes.keySet()) {
+			report.append(name).append(": load ").append(loadTimes.get(name)).append(" ms, warm-up ")
+					.append(warmupTimes.get(name)).append(" ms").append(System.lineSeparator());
+		}
+		for (Map.Entry<String, Exception> entry : failures.entrySet()) {
+			report.append(entry.getKey()).append(": failed, ").append(entry.getValue().getMessage())
+					.append(System.lineSeparator());
+		}
+		return report.toString();
+	}
+
+	/*
+	 * Load all models in the directory given as argument and print the report
+	 */
+	public static void main(String[] args) {
+		try {
+			long startTime = System.currentTimeMillis();
+			ModelLoader loader = new ModelLoader();
+			loader.loadDirectory(new File(args[0]));
+			System.out.print(loader.getReport());
+			System.out.println("Loaded " + loader.getModels().keySet() + " Elapsed Time (ms): " + (System.currentTimeMillis() - startTime));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
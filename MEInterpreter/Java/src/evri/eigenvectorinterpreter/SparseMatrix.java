@@ -0,0 +1,190 @@
+package evri.eigenvectorinterpreter;
+
+import Jama.Matrix;
+
+public class SparseMatrix {
+
+	// Constants at or below this fraction of non-zero elements (and with at least
+	// MIN_ELEMENTS elements) are worth keeping in sparse form
+	public static final double MAX_DENSITY = 0.25;
+	public static final int MIN_ELEMENTS = 64;
+
+	// compressed sparse row storage: non-zeros of row r are at rowStart[r] .. rowStart[r+1]-1
+	private int rows;
+	private int cols;
+	private int[] rowStart;
+	private int[] colIndex;
+	private double[] values;
+
+	// Builds the compressed sparse row form of dense
+	public SparseMatrix(Matrix dense) {
+		double[][] da = dense.getArray();
+		rows = dense.getRowDimension();
+		cols = dense.getColumnDimension();
+		int nnz = countNonZeros(dense);
+		rowStart = new int[rows + 1];
+		colIndex = new int[nnz];
+		values = new double[nnz];
+		int p = 0;
+		for (int ri = 0; ri < rows; ri++) {
+			rowStart[ri] = p;
+			for (int ci = 0; ci < cols; ci++) {
+				if (da[ri][ci] != 0) {
+					colIndex[p] = ci;
+					values[p] = da[ri][ci];
+					p++;
+				}
+			}
+		}
+		rowStart[rows] = p;
+	}
+
+	// True if m is large enough and has few enough non-zeros to be stored sparse.
+	// Matrices holding NaN or Inf stay dense: the products skip zero elements of the other
+	// input, which would lose 0*Inf = NaN.
+	public static boolean isSparse(Matrix m) {
+		long nel = (long) m.getRowDimension() * m.getColumnDimension();
+		if (nel < MIN_ELEMENTS) return false;
+		for (double[] row : m.getArray()) {
+			for (double v : row) {
+				if (Double.isNaN(v) || Double.isInfinite(v)) return false;
+			}
+		}
+		return countNonZeros(m) <= MAX_DENSITY * nel;
+	}
+
+	private static int countNonZeros(Matrix m) {
+		int nnz = 0;
+		for (double[] row : m.getArray()) {
+			for (double v : row) {
+				if (v != 0) nnz++;
+			}
+		}
+		return nnz;
+	}
+
+	public int getRowDimension() {
+		return rows;
+	}
+
+	public int getColumnDimension() {
+		return cols;
+	}
+
+	public int getNonZeros() {
+		return values.length;
+	}
+
+	// Approximate bytes used by the sparse storage
+	public long getMemorySize() {
+		return 12L * values.length + 4L * rowStart.length;
+	}
+
+	// Approximate bytes used by the equivalent dense matrix
+	public long getDenseMemorySize() {
+		return 8L * rows * cols;
+	}
+
+	// Dense copy of this matrix
+	public Matrix toMatrix() {
+		Matrix outvar = new Matrix(rows, cols);
+		double[][] oa = outvar.getArray();
+		for (int ri = 0; ri < rows; ri++) {
+			for (int p = rowStart[ri]; p < rowStart[ri + 1]; p++) {
+				oa[ri][colIndex[p]] = values[p];
+			}
+		}
+		return outvar;
+	}
+
+	// Matrix product this * b
+	public Matrix times(Matrix b) {
+		if (b.getRowDimension() != cols) {
+			throw new IllegalArgumentException("Matrix inner dimensions must agree.");
+		}
+		int bcols = b.getColumnDimension();
+		double[][] ba = b.getArray();
+		Matrix outvar = new Matrix(rows, bcols);
+		double[][] oa = outvar.getArray();
+		for (int ri = 0; ri < rows; ri++) {
+			double[] orow = oa[ri];
+			for (int p = rowStart[ri]; p < rowStart[ri + 1]; p++) {
+				double v = values[p];
+				double[] brow = ba[colIndex[p]];
+				for (int ci = 0; ci < bcols; ci++) {
+					orow[ci] += v * brow[ci];
+				}
+			}
+		}
+		return outvar;
+	}
+
+	// Matrix product a * this
+	public Matrix leftTimes(Matrix a) {
+		if (a.getColumnDimension() != rows) {
+			throw new IllegalArgumentException("Matrix inner dimensions must agree.");
+		}
+		int arows = a.getRowDimension();
+		double[][] aa = a.getArray();
+		Matrix outvar = new Matrix(arows, cols);
+		double[][] oa = outvar.getArray();
+		for (int ri = 0; ri < arows; ri++) {
+			double[] arow = aa[ri];
+			double[] orow = oa[ri];
+			for (int k = 0; k < rows; k++) {
+				double ak = arow[k];
+				if (ak == 0) continue;
+				for (int p = rowStart[k]; p < rowStart[k + 1]; p++) {
+					orow[colIndex[p]] += ak * values[p];
+				}
+			}
+		}
+		return outvar;
+	}
+
+	// Element by element product with b (same dimensions)
+	public Matrix arrayTimes(Matrix b) {
+		checkDimensions(b);
+		double[][] ba = b.getArray();
+		Matrix outvar = new Matrix(rows, cols);
+		double[][] oa = outvar.getArray();
+		for (int ri = 0; ri < rows; ri++) {
+			for (int p = rowStart[ri]; p < rowStart[ri + 1]; p++) {
+				int ci = colIndex[p];
+				oa[ri][ci] = values[p] * ba[ri][ci];
+			}
+		}
+		return outvar;
+	}
+
+	// Product with scalar s
+	public Matrix times(double s) {
+		Matrix outvar = new Matrix(rows, cols);
+		double[][] oa = outvar.getArray();
+		for (int ri = 0; ri < rows; ri++) {
+			for (int p = rowStart[ri]; p < rowStart[ri + 1]; p++) {
+				oa[ri][colIndex[p]] = values[p] * s;
+			}
+		}
+		return outvar;
+	}
+
+	// Sum with b (same dimensions)
+	public Matrix plus(Matrix b) {
+		checkDimensions(b);
+		Matrix outvar = b.copy();
+		double[][] oa = outvar.getArray();
+		for (int ri = 0; ri < rows; ri++) {
+			for (int p = rowStart[ri]; p < rowStart[ri + 1]; p++) {
+				oa[ri][colIndex[p]] += values[p];
+			}
+		}
+		return outvar;
+	}
+
+	private void checkDimensions(Matrix b) {
+		if (b.getRowDimension() != rows || b.getColumnDimension() != cols) {
+			throw new IllegalArgumentException("Matrix dimensions must agree.");
+		}
+	}
+}
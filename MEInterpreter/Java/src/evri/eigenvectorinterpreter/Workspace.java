@@ -13,42 +13,73 @@ public class Workspace {
 	// (List<String>) Returns the alphabetically sorted list of names for all variables currently set in the
 	// Workspace as a List<String> type. These names can be used with the getVar method to retrieve the values.
 	private Map<String, Matrix> varMap;
+
+	// variables stored in sparse form only, see setSparseVar
+	private Map<String, SparseMatrix> sparseMap;
 	
 	public Workspace() {
 		varMap = new HashMap<String, Matrix>();
+		sparseMap = new HashMap<String, SparseMatrix>();
 	}
 	
 	private Map<String, Matrix> getVarMap() {
 		return varMap;
 	}
 
+	private Map<String, SparseMatrix> getSparseMap() {
+		return sparseMap;
+	}
+
 	// Sets the variable specified by name with the matrix value
 	public void setVar(String name, Matrix value) {
 		varMap.put(name,  value);
+		sparseMap.remove(name);
+	}
+
+	// Sets the variable specified by name with a sparse value, no dense copy is kept
+	public void setSparseVar(String name, SparseMatrix value) {
+		sparseMap.put(name, value);
+		varMap.remove(name);
 	}
 	
 	// Copies all variables in the toadd workspace into the workspace
 	public void setVar(Workspace toadd) {
+		varMap.keySet().removeAll(toadd.getSparseMap().keySet());
+		sparseMap.keySet().removeAll(toadd.getVarMap().keySet());
 		varMap.putAll(toadd.getVarMap());
+		sparseMap.putAll(toadd.getSparseMap());
 	}
 
-	// Retrieves the specified variable name from the workspace
+	// Retrieves the specified variable name from the workspace,
+	// a sparse variable is returned as a new dense matrix on every call
 	public Matrix getVar(String name) {
+		SparseMatrix sparse = sparseMap.get(name);
+		if (sparse != null) {
+			return sparse.toMatrix();
+		}
 		return varMap.get(name);
 	}
+
+	// Retrieves the sparse form of the specified variable name (null if it isn't stored sparse)
+	public SparseMatrix getSparseVar(String name) {
+		return sparseMap.get(name);
+	}
 	
 	public List<String> getVarList() {
 		Set<String> keys = this.getVarMap().keySet();
-		return new ArrayList<String>(keys);		
+		List<String> names = new ArrayList<String>(keys);
+		names.addAll(this.getSparseMap().keySet());
+		return names;
 	}
 
 	// True if the given variable name is currently set in the workspace.
 	public Boolean isSet(String name) {
-		return varMap.containsKey(name);
+		return varMap.containsKey(name) || sparseMap.containsKey(name);
 	}
 	
 	// Clears all values from the workspace.
 	public void clearAll() {
 		varMap.clear();
+		sparseMap.clear();
 	}
 }